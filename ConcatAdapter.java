@@ -0,0 +1,298 @@
+package com.github.megatronking.view;
+
+import android.database.DataSetObserver;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListAdapter;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * An adapter presenting an ordered list of child adapters as one list.
+ * <p>
+ * When attached to {@link SimulateListView}, a change of one child adapter only updates the items
+ * of its own segment, the items of the other segments are not bound again. The view types of each
+ * child adapter are shifted into their own range, so a view is never recycled across segments with
+ * different types.
+ * </p>
+ * <p>
+ * The child adapters are only observed while this adapter has observers itself.
+ * </p>
+ */
+public class ConcatAdapter extends BaseAdapter {
+
+    private final ListAdapter[] mAdapters;
+
+    /**
+     * The item count of each segment known by the list, refreshed when the segment changes
+     */
+    private final int[] mCounts;
+
+    /**
+     * The first view type of each segment
+     */
+    private final int[] mViewTypeOffsets;
+
+    private final int mViewTypeCount;
+
+    /**
+     * The view type each returned view was created for
+     */
+    private final WeakHashMap<View, Integer> mViewTypes = new WeakHashMap<View, Integer>();
+
+    /**
+     * The observers of this adapter, the ones implementing {@link OnSegmentChangedListener} receive
+     * range updates instead of {@link DataSetObserver#onChanged()}
+     */
+    private final ArrayList<DataSetObserver> mObservers = new ArrayList<DataSetObserver>();
+
+    /**
+     * The observers registered on the child adapters while this adapter is observed
+     */
+    private final SegmentDataSetObserver[] mSegmentObservers;
+
+    /**
+     * @param adapters The child adapters in the order their items are shown.
+     */
+    public ConcatAdapter(ListAdapter... adapters) {
+        mAdapters = adapters.clone();
+        mCounts = new int[mAdapters.length];
+        mViewTypeOffsets = new int[mAdapters.length];
+        mSegmentObservers = new SegmentDataSetObserver[mAdapters.length];
+
+        int viewTypeCount = 0;
+        for (int i = 0; i < mAdapters.length; i++) {
+            mCounts[i] = mAdapters[i].getCount();
+            mViewTypeOffsets[i] = viewTypeCount;
+            viewTypeCount += mAdapters[i].getViewTypeCount();
+        }
+        mViewTypeCount = viewTypeCount;
+    }
+
+    /**
+     * @return The number of child adapters.
+     */
+    public int getAdapterCount() {
+        return mAdapters.length;
+    }
+
+    /**
+     * @param index The index of the child adapter.
+     * @return The child adapter at the index.
+     */
+    public ListAdapter getAdapter(int index) {
+        return mAdapters[index];
+    }
+
+    /**
+     * Returns the position of the first item of a child adapter in this adapter.
+     *
+     * @param index The index of the child adapter.
+     * @return The position of the first item of the segment.
+     */
+    public int getSegmentStart(int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start += mCounts[i];
+        }
+        return start;
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        if (observer == null || mObservers.contains(observer)) {
+            return;
+        }
+
+        mObservers.add(observer);
+        if (mObservers.size() == 1) {
+            // the counts may have changed while nobody observed
+            refreshCounts();
+            for (int i = 0; i < mAdapters.length; i++) {
+                mSegmentObservers[i] = new SegmentDataSetObserver(this, mAdapters[i], i);
+                mAdapters[i].registerDataSetObserver(mSegmentObservers[i]);
+            }
+        }
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        if (!mObservers.remove(observer) || !mObservers.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < mAdapters.length; i++) {
+            mAdapters[i].unregisterDataSetObserver(mSegmentObservers[i]);
+            mSegmentObservers[i] = null;
+        }
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        refreshCounts();
+        for (int i = mObservers.size() - 1; i >= 0; i--) {
+            mObservers.get(i).onChanged();
+        }
+    }
+
+    @Override
+    public void notifyDataSetInvalidated() {
+        refreshCounts();
+        for (int i = mObservers.size() - 1; i >= 0; i--) {
+            mObservers.get(i).onInvalidated();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        if (mObservers.isEmpty()) {
+            refreshCounts();
+        }
+
+        int count = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        int index = getSegmentIndex(position);
+        return mAdapters[index].getItem(position - getSegmentStart(index));
+    }
+
+    @Override
+    public long getItemId(int position) {
+        int index = getSegmentIndex(position);
+        return mAdapters[index].getItemId(position - getSegmentStart(index));
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        for (ListAdapter adapter : mAdapters) {
+            if (!adapter.areAllItemsEnabled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        int index = getSegmentIndex(position);
+        return mAdapters[index].isEnabled(position - getSegmentStart(index));
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        int index = getSegmentIndex(position);
+        int viewType = mAdapters[index].getItemViewType(position - getSegmentStart(index));
+        return viewType < 0 ? viewType : mViewTypeOffsets[index] + viewType;
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return Math.max(mViewTypeCount, 1);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        int index = getSegmentIndex(position);
+        int viewType = getItemViewType(position);
+
+        // never recycle a view created for another type
+        if (convertView != null) {
+            Integer convertViewType = mViewTypes.get(convertView);
+            if (convertViewType == null || convertViewType != viewType) {
+                convertView = null;
+            }
+        }
+
+        View view = mAdapters[index].getView(position - getSegmentStart(index), convertView, parent);
+        if (view != null) {
+            mViewTypes.put(view, viewType);
+        }
+        return view;
+    }
+
+    private int getSegmentIndex(int position) {
+        int offset = position;
+        for (int i = 0; i < mCounts.length; i++) {
+            if (offset < mCounts[i]) {
+                return i;
+            }
+            offset -= mCounts[i];
+        }
+        throw new IndexOutOfBoundsException("Invalid position " + position + " in ConcatAdapter!");
+    }
+
+    private void refreshCounts() {
+        for (int i = 0; i < mAdapters.length; i++) {
+            mCounts[i] = mAdapters[i].getCount();
+        }
+    }
+
+    private void onSegmentChanged(int index) {
+        int oldCount = mCounts[index];
+        mCounts[index] = mAdapters[index].getCount();
+        int start = getSegmentStart(index);
+        for (int i = mObservers.size() - 1; i >= 0; i--) {
+            DataSetObserver observer = mObservers.get(i);
+            if (observer instanceof OnSegmentChangedListener) {
+                ((OnSegmentChangedListener) observer).onSegmentChanged(start, oldCount, mCounts[index]);
+            } else {
+                observer.onChanged();
+            }
+        }
+    }
+
+    /**
+     * Translates the change of a child adapter into a range update of its segment. It only holds
+     * the concat adapter weakly, so a long-lived child adapter never keeps the list alive.
+     */
+    private static class SegmentDataSetObserver extends DataSetObserver {
+
+        private final WeakReference<ConcatAdapter> mConcatAdapter;
+        private final ListAdapter mAdapter;
+        private final int mIndex;
+
+        SegmentDataSetObserver(ConcatAdapter concatAdapter, ListAdapter adapter, int index) {
+            mConcatAdapter = new WeakReference<ConcatAdapter>(concatAdapter);
+            mAdapter = adapter;
+            mIndex = index;
+        }
+
+        @Override
+        public void onChanged() {
+            ConcatAdapter concatAdapter = mConcatAdapter.get();
+            if (concatAdapter == null) {
+                mAdapter.unregisterDataSetObserver(this);
+                return;
+            }
+            concatAdapter.onSegmentChanged(mIndex);
+        }
+
+        @Override
+        public void onInvalidated() {
+            onChanged();
+        }
+    }
+
+    /**
+     * Interface definition for an observer of this adapter which handles the change of one segment
+     * as a range update.
+     */
+    interface OnSegmentChangedListener {
+
+        /**
+         * @param start The position of the first item of the segment.
+         * @param oldCount The item count of the segment before the change.
+         * @param newCount The item count of the segment after the change.
+         */
+        void onSegmentChanged(int start, int oldCount, int newCount);
+    }
+}
@@ -5,7 +5,12 @@ import android.content.Context;
 import android.database.DataSetObserver;
 import android.graphics.Rect;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
 import android.view.MotionEvent;
@@ -15,9 +20,19 @@ import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
 import android.widget.ListAdapter;
 import android.widget.ScrollView;
+import android.widget.SectionIndexer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 正常的ListView在ScrollView中会出现性能问题(getView多次调用)。 此类使用LinearLayout模拟ListView,具备基本的ListView特性<br>
@@ -44,6 +59,11 @@ public class SimulateListView extends LinearLayout {
      */
     public static final long INVALID_ROW_ID = Long.MIN_VALUE;
 
+    /**
+     * The threads computing snapshot differences away from the main thread, shared by all lists
+     */
+    private static final Executor BACKGROUND_POOL = newBackgroundPool();
+
     /**
      * Should be used by subclasses to listen to changes in the dataset
      */
@@ -66,6 +86,45 @@ public class SimulateListView extends LinearLayout {
 
     private ListAdapter mAdapter;
 
+    /**
+     * The attached adapter if it is a {@link SnapshotAdapter}, read by the background thread
+     */
+    private volatile SnapshotAdapter<Object> mSnapshotAdapter;
+
+    /**
+     * Whether a snapshot is being diffed or applied
+     */
+    private final AtomicBoolean mSnapshotInFlight = new AtomicBoolean();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The serial queue of this list on the shared pool, so a large list never blocks another one
+     */
+    private final Executor mBackgroundExecutor = new SerialExecutor(BACKGROUND_POOL);
+
+    private final Runnable mDiffSnapshotRunnable = new DiffSnapshotRunnable();
+
+    /**
+     * The filter deciding which items are shown, read by the background thread
+     */
+    private volatile ItemFilter mItemFilter;
+
+    /**
+     * Whether the item at each position is rejected by the filter, null if there is no filter
+     */
+    private boolean[] mFilteredOut;
+
+    /**
+     * The sections whose items are hidden except the first one
+     */
+    private final SparseBooleanArray mCollapsedSections = new SparseBooleanArray();
+
+    /**
+     * The item views hidden by the mask, views hidden by the adapter itself are never touched
+     */
+    private HashSet<View> mMaskedViews = new HashSet<View>();
+
     private GestureDetector mGestureDetector;
 
     /**
@@ -112,20 +171,98 @@ public class SimulateListView extends LinearLayout {
      *            list and for producing a view to represent an item in that data set.
      * @see #getAdapter()
      */
+    @SuppressWarnings("unchecked")
     public void setAdapter(ListAdapter adapter) {
         if (mAdapter != null) {
             throw new UnsupportedOperationException("The adpater of SimulateListView has been attached!");
         }
 
+        if (adapter instanceof SnapshotAdapter && ((SnapshotAdapter<?>) adapter).isAttached()) {
+            throw new IllegalStateException("The SnapshotAdapter has been attached to another SimulateListView!");
+        }
+
         mAdapter = adapter;
 
         if (mAdapter != null) {
             mDataSetObserver = new AdapterDataSetObserver();
             mAdapter.registerDataSetObserver(mDataSetObserver);
 
+            if (mAdapter instanceof SnapshotAdapter) {
+                mSnapshotAdapter = (SnapshotAdapter<Object>) mAdapter;
+            }
+
             mStoredViews = new View[mAdapter.getCount()];
 
             layoutViews();
+            updateItemMask();
+
+            // publish this list to the producers only after it is ready to diff
+            if (mSnapshotAdapter != null) {
+                mSnapshotAdapter.attach(this);
+            }
+        }
+    }
+
+    /**
+     * Sets the filter deciding which items are shown. Rejected items keep their views and are only
+     * hidden, so neither filtering nor clearing the filter binds any item again.
+     * <p>
+     * If the attached adapter is a {@link SnapshotAdapter}, the filter is only evaluated on the
+     * background queue of this list against the immutable snapshot, and only the latest filter is
+     * applied. Otherwise it is evaluated on the main thread.
+     * </p>
+     *
+     * @param filter The filter, or null to show all items.
+     */
+    public void setItemFilter(ItemFilter filter) {
+        mItemFilter = filter;
+        if (mAdapter != null) {
+            updateItemMask();
+        }
+    }
+
+    /**
+     * @return The filter deciding which items are shown, or null if there is no filter.
+     */
+    public ItemFilter getItemFilter() {
+        return mItemFilter;
+    }
+
+    /**
+     * Collapses or expands a section. The items of a collapsed section are hidden except the first
+     * one, which is the group header. No item is bound again.
+     *
+     * @param section The section index defined by the adapter.
+     * @param collapsed true to collapse the section, false to expand it.
+     * @throws IllegalStateException If the attached adapter is not a {@link SectionIndexer}.
+     */
+    public void setSectionCollapsed(int section, boolean collapsed) {
+        if (!(mAdapter instanceof SectionIndexer)) {
+            throw new IllegalStateException("Collapsing sections requires a SectionIndexer adapter attached to SimulateListView!");
+        }
+
+        if (collapsed) {
+            mCollapsedSections.put(section, true);
+        } else {
+            mCollapsedSections.delete(section);
+        }
+        applyItemMask();
+    }
+
+    /**
+     * @param section The section index defined by the adapter.
+     * @return true if the section is collapsed.
+     */
+    public boolean isSectionCollapsed(int section) {
+        return mCollapsedSections.get(section);
+    }
+
+    /**
+     * Called by the attached {@link SnapshotAdapter} from any thread after a snapshot is pending.
+     */
+    void scheduleSnapshotDiff() {
+        if (mSnapshotInFlight.compareAndSet(false, true)) {
+            mBackgroundExecutor.execute(mDiffSnapshotRunnable);
         }
     }
 
@@ -299,6 +436,11 @@ public class SimulateListView extends LinearLayout {
             position = 0;
         }
 
+        // the item hidden by the mask has no valid bounds
+        if (getChildAt(position).getVisibility() == GONE) {
+            return;
+        }
+
         if (getParent() instanceof ScrollView && getOrientation() == VERTICAL) {
             scrollToPositionVertical(position);
         } else if (getParent() instanceof HorizontalScrollView && getOrientation() == HORIZONTAL) {
@@ -329,6 +471,11 @@ public class SimulateListView extends LinearLayout {
             position = 0;
         }
 
+        // the item hidden by the mask has no valid bounds
+        if (getChildAt(position).getVisibility() == GONE) {
+            return;
+        }
+
         if (getParent() instanceof ScrollView && getOrientation() == VERTICAL) {
             scrollToEndPositionVertical(position);
         } else if (getParent() instanceof HorizontalScrollView && getOrientation() == HORIZONTAL) {
@@ -363,6 +510,11 @@ public class SimulateListView extends LinearLayout {
             position = 0;
         }
 
+        // the item hidden by the mask has no valid bounds
+        if (getChildAt(position).getVisibility() == GONE) {
+            return;
+        }
+
         View itemView = getChildAt(position);
         int scrollPoint = 0;
         if (getParent() instanceof ScrollView && getOrientation() == VERTICAL) {
@@ -554,8 +706,12 @@ public class SimulateListView extends LinearLayout {
     }
 
     private void makeAndAddView(int position) {
+        makeAndAddView(position, mStoredViews[position]);
+    }
+
+    private void makeAndAddView(int position, View convertView) {
 
-        View child = mAdapter.getView(position, mStoredViews[position], this);
+        View child = mAdapter.getView(position, convertView, this);
         if (child == null) {
             throw new IllegalArgumentException("The adapter of SimulateListView must be not return a view not null!");
         }
@@ -569,7 +725,7 @@ public class SimulateListView extends LinearLayout {
             if (mStoredViews[position] != null) {
                 removeViewInLayout(mStoredViews[position]);
             }
-            addViewInLayout(child, mHeaderViews.size() + position, lp, false);
+            addViewInLayout(child, getFirstItemIndex() + position, lp, false);
 
             // save item view for recycle
             mStoredViews[position] = child;
@@ -577,6 +733,255 @@ public class SimulateListView extends LinearLayout {
 
     }
 
+    private void updateItemRange(int start, int oldCount, int newCount) {
+        View[] oldViews = mStoredViews;
+        if (newCount < oldCount) {
+            removeViewsInLayout(getFirstItemIndex() + start + newCount, oldCount - newCount);
+        }
+        if (newCount != oldCount) {
+            View[] temp = new View[oldViews.length + newCount - oldCount];
+            System.arraycopy(oldViews, 0, temp, 0, start + Math.min(oldCount, newCount));
+            System.arraycopy(oldViews, start + oldCount, temp, start + newCount, oldViews.length - start - oldCount);
+            mStoredViews = temp;
+        }
+
+        requestLayout();
+        invalidate();
+
+        // only bind the items in the range, new ones are inserted before the following segments
+        for (int position = start; position < start + newCount; position++) {
+            makeAndAddView(position);
+        }
+        updateItemMask();
+    }
+
+    private void updateItemMask() {
+        final ItemFilter filter = mItemFilter;
+        if (filter == null) {
+            mFilteredOut = null;
+        } else if (mSnapshotAdapter != null) {
+            // keep the current mask until the result is posted back
+            final List<Object> snapshot = mSnapshotAdapter.getSnapshot();
+            mBackgroundExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    // skip the filters replaced before evaluated
+                    if (mItemFilter != filter) {
+                        return;
+                    }
+
+                    final boolean[] filteredOut = filterItems(filter, snapshot);
+                    mMainHandler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            // a newer snapshot is applied with its own evaluation
+                            if (mItemFilter == filter && mSnapshotAdapter.getSnapshot() == snapshot) {
+                                mFilteredOut = filteredOut;
+                                applyItemMask();
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        } else {
+            mFilteredOut = new boolean[mAdapter.getCount()];
+            for (int position = 0; position < mFilteredOut.length; position++) {
+                mFilteredOut[position] = !filter.accept(position, mAdapter.getItem(position));
+            }
+        }
+        applyItemMask();
+    }
+
+    private void applyItemMask() {
+        boolean[] filteredOut = mFilteredOut;
+        SectionIndexer indexer = null;
+        if (mCollapsedSections.size() > 0 && mAdapter instanceof SectionIndexer) {
+            indexer = (SectionIndexer) mAdapter;
+        }
+        if (filteredOut == null && indexer == null && mMaskedViews.isEmpty()) {
+            return;
+        }
+
+        HashSet<View> maskedViews = new HashSet<View>();
+        for (int position = 0; position < mStoredViews.length; position++) {
+            View child = mStoredViews[position];
+            if (child == null) {
+                continue;
+            }
+
+            boolean visible = filteredOut == null || position >= filteredOut.length || !filteredOut[position];
+            if (visible && indexer != null) {
+                int section = indexer.getSectionForPosition(position);
+                visible = !mCollapsedSections.get(section) || indexer.getPositionForSection(section) == position;
+            }
+
+            boolean masked = mMaskedViews.contains(child);
+            if (visible) {
+                // only restore the views hidden by the mask
+                if (masked && child.getVisibility() == GONE) {
+                    child.setVisibility(VISIBLE);
+                }
+            } else if (masked || child.getVisibility() != GONE) {
+                child.setVisibility(GONE);
+                maskedViews.add(child);
+            }
+        }
+        mMaskedViews = maskedViews;
+    }
+
+    private static boolean[] filterItems(ItemFilter filter, List<Object> items) {
+        boolean[] filteredOut = new boolean[items.size()];
+        for (int position = 0; position < filteredOut.length; position++) {
+            filteredOut[position] = !filter.accept(position, items.get(position));
+        }
+        return filteredOut;
+    }
+
+    /**
+     * Returns the child index of the first item. A header added after the adapter is only laid out
+     * on the next full layout, so only the headers which are already children are counted.
+     */
+    private int getFirstItemIndex() {
+        int index = 0;
+        for (View header : mHeaderViews) {
+            if (header.getParent() == this) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    private void applySnapshotDiff(SnapshotDiff diff) {
+        View[] oldViews = mStoredViews;
+        int newCount = diff.oldPositions.length;
+        View[] newViews = new View[newCount];
+        boolean[] kept = new boolean[oldViews.length];
+        for (int position = 0; position < newCount; position++) {
+            int oldPosition = diff.oldPositions[position];
+            if (oldPosition != INVALID_POSITION) {
+                newViews[position] = oldViews[oldPosition];
+                kept[oldPosition] = true;
+            }
+        }
+
+        // remove the views of the dropped items and keep them by view type for the new items, the
+        // current snapshot still tells their view types
+        SparseArray<ArrayList<View>> scrapViews = new SparseArray<ArrayList<View>>();
+        for (int position = 0; position < oldViews.length; position++) {
+            View child = oldViews[position];
+            if (kept[position] || child == null) {
+                continue;
+            }
+
+            removeViewInLayout(child);
+            int viewType = mAdapter.getItemViewType(position);
+            if (viewType >= 0) {
+                ArrayList<View> scrap = scrapViews.get(viewType);
+                if (scrap == null) {
+                    scrap = new ArrayList<View>();
+                    scrapViews.put(viewType, scrap);
+                }
+                scrap.add(child);
+            }
+        }
+
+        mSnapshotAdapter.setSnapshot(diff.snapshot);
+        mStoredViews = newViews;
+
+        requestLayout();
+        invalidate();
+
+        int firstItemIndex = getFirstItemIndex();
+        for (int position = 0; position < newCount; position++) {
+            View child = newViews[position];
+            if (child == null) {
+                int viewType = mAdapter.getItemViewType(position);
+                ArrayList<View> scrap = viewType >= 0 ? scrapViews.get(viewType) : null;
+                makeAndAddView(position, scrap == null || scrap.isEmpty() ? null : scrap.remove(scrap.size() - 1));
+                continue;
+            }
+
+            if (getChildAt(firstItemIndex + position) != child) {
+                // the item has been moved, keep the view attached without binding it again
+                detachViewFromParent(child);
+                attachViewToParent(child, firstItemIndex + position, child.getLayoutParams());
+            }
+            if (diff.changed[position]) {
+                makeAndAddView(position);
+            }
+        }
+
+        if (diff.filter != null && diff.filter == mItemFilter) {
+            mFilteredOut = diff.filteredOut;
+            applyItemMask();
+        } else {
+            // the filter changed during the diff, keep the old results of the kept items until the
+            // new ones are posted back, so the mask never applies old positions to new items
+            boolean[] oldFilteredOut = mFilteredOut;
+            if (oldFilteredOut != null) {
+                mFilteredOut = new boolean[newCount];
+                for (int position = 0; position < newCount; position++) {
+                    int oldPosition = diff.oldPositions[position];
+                    mFilteredOut[position] = oldPosition != INVALID_POSITION && oldPosition < oldFilteredOut.length
+                            && oldFilteredOut[oldPosition];
+                }
+                applyItemMask();
+            }
+            updateItemMask();
+        }
+    }
+
+    private static SnapshotDiff calculateDiff(SnapshotAdapter<Object> adapter, List<Object> oldList,
+            List<Object> newList) {
+        int oldCount = oldList.size();
+        int newCount = newList.size();
+
+        // iterate backwards so the first one of duplicated keys wins
+        HashMap<Object, Integer> oldPositionsByKey = new HashMap<Object, Integer>(oldCount);
+        for (int position = oldCount - 1; position >= 0; position--) {
+            oldPositionsByKey.put(adapter.getItemKey(oldList.get(position)), position);
+        }
+
+        int[] oldPositions = new int[newCount];
+        boolean[] changed = new boolean[newCount];
+        for (int position = 0; position < newCount; position++) {
+            Object newItem = newList.get(position);
+            Integer oldPosition = oldPositionsByKey.remove(adapter.getItemKey(newItem));
+            if (oldPosition == null) {
+                oldPositions[position] = INVALID_POSITION;
+            } else {
+                oldPositions[position] = oldPosition;
+                changed[position] = !adapter.areContentsTheSame(oldList.get(oldPosition), newItem);
+            }
+        }
+        return new SnapshotDiff(newList, oldPositions, changed);
+    }
+
+    private static Executor newBackgroundPool() {
+        int poolSize = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+        return Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "SimulateListView-background #" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     private void scrollToPositionHorizonal(int position) {
         View itemView = getChildAt(position);
         ((ViewGroup) getParent()).scrollTo(itemView.getLeft(), 0);
@@ -642,7 +1047,128 @@ public class SimulateListView extends LinearLayout {
         }
     }
 
-    private class AdapterDataSetObserver extends DataSetObserver {
+    /**
+     * Diffs the latest pending snapshot on the background thread and posts the result to the main
+     * thread. The next pending snapshot is only diffed after the previous result has been applied.
+     */
+    private class DiffSnapshotRunnable implements Runnable {
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void run() {
+            SnapshotAdapter<Object> adapter = mSnapshotAdapter;
+            List<Object> snapshot = adapter.takePendingSnapshot();
+            if (snapshot == null) {
+                finish(adapter);
+                return;
+            }
+
+            final SnapshotDiff diff;
+            try {
+                diff = calculateDiff(adapter, adapter.getSnapshot(), snapshot);
+
+                // evaluate the filter here too, so the main thread only toggles visibility
+                diff.filter = mItemFilter;
+                if (diff.filter != null) {
+                    diff.filteredOut = filterItems(diff.filter, snapshot);
+                }
+            } catch (RuntimeException e) {
+                finish(adapter);
+                throw e;
+            }
+
+            mMainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        applySnapshotDiff(diff);
+                    } finally {
+                        mBackgroundExecutor.execute(DiffSnapshotRunnable.this);
+                    }
+                }
+            });
+        }
+
+        private void finish(SnapshotAdapter<Object> adapter) {
+            mSnapshotInFlight.set(false);
+            // a snapshot may be submitted before the flag is cleared
+            if (adapter.hasPendingSnapshot()) {
+                scheduleSnapshotDiff();
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks of one list one by one on the shared pool
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        private final Executor mExecutor;
+        private Runnable mActive;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            mTasks.offer(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            mActive = mTasks.poll();
+            if (mActive != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+
+    /**
+     * The difference between the current snapshot and a new one
+     */
+    private static class SnapshotDiff {
+
+        final List<Object> snapshot;
+
+        /**
+         * The position in the current snapshot for each new item, or {@link #INVALID_POSITION}
+         */
+        final int[] oldPositions;
+
+        /**
+         * Whether the kept item needs to be bound again
+         */
+        final boolean[] changed;
+
+        /**
+         * The filter evaluated against the new snapshot and its result
+         */
+        ItemFilter filter;
+        boolean[] filteredOut;
+
+        SnapshotDiff(List<Object> snapshot, int[] oldPositions, boolean[] changed) {
+            this.snapshot = snapshot;
+            this.oldPositions = oldPositions;
+            this.changed = changed;
+        }
+    }
+
+    private class AdapterDataSetObserver extends DataSetObserver implements ConcatAdapter.OnSegmentChangedListener {
 
         @Override
         public void onChanged() {
@@ -665,7 +1191,30 @@ public class SimulateListView extends LinearLayout {
                 mStoredViews = temp;
             }
             layoutViews();
+            updateItemMask();
         }
+
+        @Override
+        public void onSegmentChanged(int start, int oldCount, int newCount) {
+            updateItemRange(start, oldCount, newCount);
+        }
+    }
+
+    /**
+     * Interface definition for a filter deciding which items in this SimulateListView are shown.
+     */
+    public interface ItemFilter {
+
+        /**
+         * Checks whether an item is shown. If the adapter is a {@link SnapshotAdapter}, it is only
+         * called on the background queue of the list, one call at a time, so it must not touch any
+         * view. Otherwise it is called on the main thread.
+         *
+         * @param position The position of the item in the adapter.
+         * @param item The data associated with the position.
+         * @return true if the item is shown, false to hide it.
+         */
+        boolean accept(int position, Object item);
     }
 
     /**
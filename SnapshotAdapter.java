@@ -0,0 +1,126 @@
+package com.github.megatronking.view;
+
+import android.widget.BaseAdapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An adapter backed by immutable snapshots which are submitted through {@link #submitList(List)}
+ * from any thread.
+ * <p>
+ * The difference between two snapshots is computed on a background thread, so
+ * {@link #getItemKey(Object)} and {@link #areContentsTheSame(Object, Object)} must not touch any
+ * view. Only new items and items whose contents changed are bound again by
+ * {@link #getView(int, android.view.View, android.view.ViewGroup)}.
+ * </p>
+ *
+ * @param <T> The type of the items in the snapshots.
+ */
+public abstract class SnapshotAdapter<T> extends BaseAdapter {
+
+    /**
+     * The snapshot currently shown by the list, only replaced on the main thread.
+     */
+    private volatile List<T> mSnapshot = Collections.emptyList();
+
+    /**
+     * The latest submitted snapshot which is not diffed yet, older ones are dropped.
+     */
+    private final AtomicReference<List<T>> mPendingSnapshot = new AtomicReference<List<T>>();
+
+    /**
+     * The list this adapter is attached to, read by the producer threads.
+     */
+    private volatile SimulateListView mListView;
+
+    @Override
+    public int getCount() {
+        return mSnapshot.size();
+    }
+
+    @Override
+    public T getItem(int position) {
+        return mSnapshot.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * Returns the snapshot currently shown by the list.
+     *
+     * @return The current snapshot, never null.
+     */
+    public List<T> getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Submits a new snapshot. This method can be called from any thread.
+     * <p>
+     * The difference against the current snapshot is computed on a background thread and only the
+     * result is applied on the main thread. If several snapshots are submitted while a previous one
+     * is still in flight, only the latest one is applied and the others are dropped. A snapshot
+     * submitted before the adapter is attached to a {@link SimulateListView} is kept until then.
+     * </p>
+     *
+     * @param snapshot The new items, must not be modified after submitted. Null means empty.
+     */
+    public void submitList(List<T> snapshot) {
+        mPendingSnapshot.set(snapshot == null ? Collections.<T>emptyList() : snapshot);
+        SimulateListView listView = mListView;
+        if (listView != null) {
+            listView.scheduleSnapshotDiff();
+        }
+    }
+
+    void setSnapshot(List<T> snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    List<T> takePendingSnapshot() {
+        return mPendingSnapshot.getAndSet(null);
+    }
+
+    boolean hasPendingSnapshot() {
+        return mPendingSnapshot.get() != null;
+    }
+
+    boolean isAttached() {
+        return mListView != null;
+    }
+
+    void attach(SimulateListView listView) {
+        mListView = listView;
+        // a producer may have submitted before the list was published
+        if (hasPendingSnapshot()) {
+            listView.scheduleSnapshotDiff();
+        }
+    }
+
+    /**
+     * Returns the key which identifies an item across snapshots. Items with equal keys are
+     * considered the same item and keep their view. Called on a background thread.
+     *
+     * @param item The item in a snapshot.
+     * @return The key of the item, the item itself by default.
+     */
+    protected Object getItemKey(T item) {
+        return item;
+    }
+
+    /**
+     * Checks whether the same item has to be bound again. Called on a background thread.
+     *
+     * @param oldItem The item in the current snapshot.
+     * @param newItem The item with the same key in the new snapshot.
+     * @return true if the view of the old item can be kept as it is.
+     */
+    protected boolean areContentsTheSame(T oldItem, T newItem) {
+        return oldItem == null ? newItem == null : oldItem.equals(newItem);
+    }
+}